@@ -0,0 +1,68 @@
+/*
+ * This file is part of Negatron.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.babelsoft.negatron.preloader;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pools of daemon threads used to do some work while the preloader is idle,
+ * i.e. while the user fills in the prompt dialog or while the splash waits for the application.
+ * Being daemons, they never prevent the JVM from exiting.
+ * The work whose progress is displayed by the splash has its own pool, so that it never queues behind the rest.
+ * As thread priorities are mostly ignored, e.g. by HotSpot on Linux, the pool of the rest is kept small
+ * not to compete for every core with the application while it initialises.
+ */
+public enum Background {
+    Tasks("Negatron-Preloader-", Thread.MIN_PRIORITY, 2),
+    ProgressTasks("Negatron-Preloader-Progress-", Thread.NORM_PRIORITY, Integer.MAX_VALUE);
+
+    public final int PARALLELISM;
+
+    private final String threadName;
+    private final int threadPriority;
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private ExecutorService executor;
+
+    private Background(String threadName, int threadPriority, int maxParallelism) {
+        PARALLELISM = Math.max(1, Math.min(maxParallelism, Runtime.getRuntime().availableProcessors() - 1));
+        this.threadName = threadName;
+        this.threadPriority = threadPriority;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null)
+            executor = Executors.newFixedThreadPool(PARALLELISM, runnable -> {
+                Thread thread = new Thread(runnable, threadName + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(threadPriority);
+                return thread;
+            });
+        return executor;
+    }
+
+    public Future<?> submit(Runnable task) {
+        return getExecutor().submit(task);
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        return getExecutor().submit(task);
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * This file is part of Negatron.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.babelsoft.negatron.preloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Offset index of an EXTRAs DAT file like history.dat, mameinfo.dat or command.dat.
+ * Each "$info=name1,name2," or "$list=name1,name2," header is mapped to the byte range of its entry,
+ * i.e. from the line following the header up to its "$end" line excluded.
+ * Each lookup only maps the byte range of its entry, the DAT file itself being neither mapped nor opened in between,
+ * which would otherwise lock it on Windows for as long as the index lives.
+ * The index is persisted in the cache folder and rebuilt whenever the DAT file size or mtime changes,
+ * lookups failing on an index whose DAT file changed since.
+ */
+public final class DatIndex {
+
+    private static final int MAGIC = 0x4E444958; // NDIX
+    private static final int VERSION = 2;
+    private static final String FOLDER = "extras";
+    private static final String MACHINE_LIST = "info";
+    private static final Pattern HEADER = Pattern.compile("^\\$(\\w+)=(.*)$");
+    private static final Map<Path, Future<DatIndex>> INDEXES = new ConcurrentHashMap<>();
+
+    private final Path datFile;
+    private final long size;
+    private final long lastModified;
+    // key => offset << 32 | length
+    private final Map<String, Long> entries;
+
+    private DatIndex(Path datFile, long size, long lastModified, Map<String, Long> entries) {
+        this.datFile = datFile;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.entries = entries;
+    }
+
+    /**
+     * Build in the background the index of every DAT file found in the EXTRAs folder.
+     */
+    public static void preload(Path extrasFolder) {
+        if (!Files.isDirectory(extrasFolder))
+            return;
+        try (Stream<Path> files = Files.find(extrasFolder, 2,
+            (file, attrs) -> attrs.isRegularFile() && file.getFileName().toString().toLowerCase().endsWith(".dat")
+        )) {
+            files.forEach(file -> Background.Tasks.submit(() -> {
+                try {
+                    open(file);
+                } catch (IOException ex) {
+                    Logger.getLogger(DatIndex.class.getName()).log(Level.WARNING, "Couldn't index " + file, ex);
+                }
+            }));
+        } catch (IOException ex) {
+            Logger.getLogger(DatIndex.class.getName()).log(Level.WARNING, "Couldn't browse the EXTRAs folder", ex);
+        }
+    }
+
+    /**
+     * Retrieve the index of a DAT file, waiting for it if it's being built in the background.
+     */
+    public static DatIndex open(Path datFile) throws IOException {
+        Path key = datFile.toAbsolutePath().normalize();
+        FutureTask<DatIndex> task = new FutureTask<>(() -> load(key));
+        Future<DatIndex> future = INDEXES.putIfAbsent(key, task);
+        if (future == null) {
+            task.run();
+            future = task;
+        }
+
+        try {
+            DatIndex index = future.get();
+            if (index.isValid())
+                return index;
+            INDEXES.remove(key, future);
+            return open(key);
+        } catch (ExecutionException ex) {
+            INDEXES.remove(key, future);
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+    }
+
+    private boolean isValid() throws IOException {
+        return Files.size(datFile) == size && Files.getLastModifiedTime(datFile).toMillis() == lastModified;
+    }
+
+    private static Path getIndexFile(Path datFile) {
+        String name = datFile.getFileName().toString();
+        // the same DAT file name may live in several EXTRAs folders
+        String hash = Integer.toHexString(datFile.toString().hashCode());
+        return NegatronPreloader.getCachePath().resolve(FOLDER).resolve(name + "." + hash + ".idx");
+    }
+
+    private static DatIndex load(Path datFile) throws IOException {
+        long size = Files.size(datFile);
+        long lastModified = Files.getLastModifiedTime(datFile).toMillis();
+        if (size > Integer.MAX_VALUE)
+            throw new IOException(datFile + " is too large to be memory-mapped");
+
+        Path indexFile = getIndexFile(datFile);
+        if (Files.exists(indexFile)) try (DataInputStream input = new DataInputStream(
+            new BufferedInputStream(Files.newInputStream(indexFile))
+        )) {
+            if (
+                input.readInt() == MAGIC && input.readInt() == VERSION &&
+                input.readUTF().equals(datFile.toString()) &&
+                input.readLong() == size && input.readLong() == lastModified
+            ) {
+                int count = input.readInt();
+                Map<String, Long> entries = new HashMap<>(count * 4 / 3 + 1);
+                for (int i = 0; i < count; ++i)
+                    entries.put(input.readUTF(), input.readLong());
+                return new DatIndex(datFile, size, lastModified, entries);
+            }
+        } catch (IOException ex) { } // corrupted index, rebuild it
+
+        DatIndex index = new DatIndex(datFile, size, lastModified, scan(datFile));
+        index.save(indexFile);
+        return index;
+    }
+
+    private static Map<String, Long> scan(Path datFile) throws IOException {
+        Scanner scanner = new Scanner();
+        // only the lines starting with $ are buffered, entry contents are merely skipped
+        ByteArrayOutputStream header = null;
+        boolean isLineStart = true;
+        int lineStart = 0;
+        int position = 0;
+
+        try (InputStream input = Files.newInputStream(datFile)) {
+            byte[] chunk = new byte[1 << 16];
+            for (int count; (count = input.read(chunk)) >= 0; ) {
+                for (int i = 0; i < count; ++i, ++position) {
+                    if (isLineStart) {
+                        lineStart = position;
+                        header = chunk[i] == '$' ? new ByteArrayOutputStream() : null;
+                        isLineStart = false;
+                    }
+                    if (chunk[i] == '\n') {
+                        if (header != null)
+                            scanner.accept(header, lineStart, position + 1);
+                        isLineStart = true;
+                    } else if (header != null)
+                        header.write(chunk[i]);
+                }
+            }
+        }
+        if (!isLineStart && header != null)
+            scanner.accept(header, lineStart, position);
+
+        scanner.entries.remove("");
+        return scanner.entries;
+    }
+
+    private static class Scanner {
+        final Map<String, Long> entries = new HashMap<>();
+        String[] keys;
+        int entryStart;
+
+        void accept(ByteArrayOutputStream header, int lineStart, int nextLineStart) {
+            String line = new String(header.toByteArray(), StandardCharsets.UTF_8).trim();
+            if (keys != null) {
+                // within an entry, only its end matters: the contents may start with a $ too
+                if (line.equals("$end")) {
+                    long range = (long) entryStart << 32 | (lineStart - entryStart);
+                    for (String key : keys)
+                        entries.put(key, range);
+                    keys = null;
+                }
+                return;
+            }
+
+            Matcher matcher = HEADER.matcher(line);
+            if (matcher.matches()) {
+                String list = matcher.group(1);
+                keys = matcher.group(2).split(",");
+                for (int i = 0; i < keys.length; ++i) {
+                    keys[i] = keys[i].trim();
+                    if (!list.equals(MACHINE_LIST))
+                        keys[i] = list + ":" + keys[i];
+                }
+                entryStart = nextLineStart;
+            }
+        }
+    }
+
+    private void save(Path indexFile) {
+        try {
+            PathUtil.writeAtomically(indexFile, temp -> {
+                try (DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp))
+                )) {
+                    output.writeInt(MAGIC);
+                    output.writeInt(VERSION);
+                    output.writeUTF(datFile.toString());
+                    output.writeLong(size);
+                    output.writeLong(lastModified);
+                    output.writeInt(entries.size());
+                    for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                        output.writeUTF(entry.getKey());
+                        output.writeLong(entry.getValue());
+                    }
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(DatIndex.class.getName()).log(Level.WARNING, "Couldn't save the index of " + datFile, ex);
+        }
+    }
+
+    /**
+     * The returned buffer maps the entry until it's garbage collected, so don't hold onto it.
+     * @return a read-only buffer mapping the entry of the DAT file, or null if the machine isn't documented
+     * @throws IOException if the DAT file changed since this index was built, in which case it must be opened again
+     */
+    public ByteBuffer lookup(String machine) throws IOException {
+        Long range = entries.get(machine);
+        if (range == null)
+            return null;
+        if (!isValid())
+            throw new IOException(datFile + " changed since it was indexed");
+        try (FileChannel channel = FileChannel.open(datFile, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, range >>> 32, range & 0xFFFFFFFFL);
+        }
+    }
+
+    /**
+     * @return a read-only buffer mapping the entry of the DAT file, or null if the software isn't documented
+     */
+    public ByteBuffer lookup(String softwareList, String software) throws IOException {
+        return lookup(softwareList + ":" + software);
+    }
+
+    public String getText(String machine) throws IOException {
+        ByteBuffer slice = lookup(machine);
+        return slice != null ? StandardCharsets.UTF_8.decode(slice).toString() : null;
+    }
+
+    public String getText(String softwareList, String software) throws IOException {
+        return getText(softwareList + ":" + software);
+    }
+}
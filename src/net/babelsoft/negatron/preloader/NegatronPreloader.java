@@ -18,7 +18,6 @@
 package net.babelsoft.negatron.preloader;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -29,10 +28,18 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 import javafx.application.Platform;
 import javafx.application.Preloader;
 import javafx.application.Preloader.ProgressNotification;
@@ -40,6 +47,7 @@ import javafx.application.Preloader.StateChangeNotification;
 import javafx.css.PseudoClass;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
@@ -47,6 +55,7 @@ import javafx.scene.control.Alert.AlertType;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
 import javafx.scene.control.ChoiceBox;
+import javafx.scene.control.ChoiceDialog;
 import javafx.scene.control.Control;
 import javafx.scene.control.Dialog;
 import javafx.scene.control.Label;
@@ -73,9 +82,15 @@ import net.babelsoft.negatron.preloader.PathUtil.PathType;
 public class NegatronPreloader extends Preloader {
     
     private static final Path NEGATRON_INI;
+    private static final Path CACHE_ROOT;
     private static final PseudoClass ERROR_CLASS = PseudoClass.getPseudoClass("error");
     private static final String MAME = "MAME";
     private static final String MESS = "MESS";
+    private static final String DEFAULT_PROFILE = "default";
+    private static final String PROFILE_PREFIX = "profile.";
+    private static final String PROFILE_MASK = "[\\w-]+";
+    
+    private static volatile Path cachePath;
     
     static {
         Path root = Paths.get(".");
@@ -96,16 +111,27 @@ public class NegatronPreloader extends Preloader {
             Logger.getLogger(NegatronPreloader.class.getName()).log(Level.SEVERE, "Couldn't determine a path where to create Negatron.ini", ex);
         } finally {
             NEGATRON_INI = root.resolve("Negatron.ini");
+            CACHE_ROOT = root.resolve("cache");
+            cachePath = CACHE_ROOT.resolve(DEFAULT_PROFILE);
         }
     }
     
+    /**
+     * @return the folder where the data derived from the MAME installation of the active profile are cached
+     */
+    public static Path getCachePath() {
+        return cachePath;
+    }
+    
     private static class Configuration {
+        private final String profile;
         private final String mamePath;
         private final String extrasPath;
         private final String multimediaPath;
         private final String language;
         
-        private Configuration(String mamePath, String extrasPath, String multimediaPath, String language) {
+        private Configuration(String profile, String mamePath, String extrasPath, String multimediaPath, String language) {
+            this.profile = profile;
             this.mamePath = mamePath;
             this.extrasPath = extrasPath;
             this.multimediaPath = multimediaPath;
@@ -113,23 +139,45 @@ public class NegatronPreloader extends Preloader {
         }
     }
     
+    private static class Profile {
+        private final String name;
+        private final String mamePath;
+        private final boolean isMess;
+        private final String extrasPath;
+        private final String multimediaPath;
+        
+        private Profile(String name, String mamePath, boolean isMess, String extrasPath, String multimediaPath) {
+            this.name = name;
+            this.mamePath = mamePath;
+            this.isMess = isMess;
+            this.extrasPath = extrasPath != null ? extrasPath : "";
+            this.multimediaPath = multimediaPath != null ? multimediaPath : "";
+        }
+    }
+    
     public static interface Notifier {
         public void onConfigurationSucceeded();
         public void onPreloadingSucceeded();
     }
 
     private Notifier notifier;
+    private WarmUp warmUp;
+    private Path mameExecutable;
     private ProgressBar bar;
     private Label label;
     private Stage stage;
     private ResourceBundle language;
     
     private boolean isMess;
+    private boolean isApplicationProgressing;
 
     @Override
     public void start(Stage stage) throws Exception {
         this.stage = stage;
         
+        // Make use of the idle time spent in the prompt dialog or the splash to warm the application up
+        warmUp = WarmUp.replay(NEGATRON_INI.resolveSibling(WarmUp.CLASS_LIST), NegatronPreloader.class.getClassLoader());
+        
         if (Files.exists(NEGATRON_INI)) {
             Files.lines(NEGATRON_INI).filter(
                 line -> line.startsWith("language ")
@@ -144,6 +192,7 @@ public class NegatronPreloader extends Preloader {
         float javaVersion = Float.parseFloat(System.getProperty("java.specification.version").replace("-ea", ""));
         String javaFxVersion = System.getProperty("javafx.version");
         if (javaVersion < 11f || javaFxVersion == null || javaFxVersion.isBlank()) {
+            Splash.close();
             AlertBox alert = AlertBox.showAndWait(
                 String.format(language.getString("javaVersion.error"), javaVersion)
             );
@@ -154,6 +203,7 @@ public class NegatronPreloader extends Preloader {
         // for whatever reasons, maxMemory() doesn't return the real -Xmx value: with Java 8u66, on Windows 455MB instead of 512, on Linux 488MB instead of 512.
         long maxHeapMB = Runtime.getRuntime().maxMemory() / 1024 / 1024;
         if (0 < maxHeapMB && maxHeapMB <= 450) {
+            Splash.close();
             Alert alert = new Alert(
                 AlertType.ERROR,
                 String.format(language.getString("maxMemory.error"), maxHeapMB),
@@ -171,34 +221,228 @@ public class NegatronPreloader extends Preloader {
         stage.getIcons().add(new Image(NegatronPreloader.class.getResourceAsStream("resource/Negatron.64.png")));
         
         stage.setScene(createPreloaderScene());
+        // take over the pre-rasterised splash displayed by the JVM, if any, at the very same place
+        Rectangle2D splashBounds = Splash.getBounds();
+        if (splashBounds != null) {
+            stage.setX(splashBounds.getMinX());
+            stage.setY(splashBounds.getMinY());
+        }
         stage.show();
+        if (splashBounds != null) {
+            // the scene is offset by the window decorations, only known once shown
+            stage.setX(splashBounds.getMinX() - stage.getScene().getX());
+            stage.setY(splashBounds.getMinY() - stage.getScene().getY());
+        }
+        Splash.close();
         
         // Initialisation check
-        if (Files.notExists(NEGATRON_INI)) {
+        Map<String, Profile> profiles = loadProfiles();
+        String activeProfile = readIniValue("profile");
+        if (activeProfile == null)
+            activeProfile = DEFAULT_PROFILE;
+        String requestedProfile = getParameters().getNamed().get("profile");
+        
+        Profile profile = null;
+        if (Files.exists(NEGATRON_INI)) {
+            if (requestedProfile != null)
+                profile = profiles.get(requestedProfile); // unknown profiles get configured below
+            else if (profiles.size() > 1)
+                profile = pickProfile(profiles, activeProfile);
+            else
+                profile = profiles.get(activeProfile);
+        }
+        
+        if (profile == null) {
             label.setText(language.getString("configuring..."));
             
-            Dialog<Configuration> dialog = createPromptDialog();
+            String profileName = requestedProfile;
+            if (profileName == null)
+                profileName = profiles.isEmpty() ? DEFAULT_PROFILE : "";
+            Dialog<Configuration> dialog = createPromptDialog(profileName, profiles.keySet());
             dialog.initOwner(stage);
-            dialog.showAndWait().ifPresent(mameConfiguration -> {
-                try (BufferedWriter writer = Files.newBufferedWriter(NEGATRON_INI)) {
-                    String path = mameConfiguration.mamePath;
-                    if (path.contains(" "))
-                        path = "\"" + path + "\"";
-                    if (isMess)
-                        writer.write("mess                      ");
-                    else
-                        writer.write("mame                      ");
-                    writer.write(path); writer.newLine();
-                    writer.write("extras                    "); writer.write(mameConfiguration.extrasPath); writer.newLine();
-                    writer.write("multimedia                "); writer.write(mameConfiguration.multimediaPath); writer.newLine();
-                    writer.write("language                  "); writer.write(mameConfiguration.language); writer.newLine();
-                } catch (IOException ex) {
-                    Logger.getLogger(NegatronPreloader.class.getName()).log(Level.SEVERE, "Couldn't write ini file", ex);
-                }
-            });
-        }
+            Optional<Configuration> configuration = dialog.showAndWait();
+            if (configuration.isPresent()) {
+                Configuration mameConfiguration = configuration.get();
+                profile = new Profile(
+                    mameConfiguration.profile, mameConfiguration.mamePath, isMess,
+                    mameConfiguration.extrasPath, mameConfiguration.multimediaPath
+                );
+                profiles.put(profile.name, profile);
+                saveProfiles(profiles, profile, mameConfiguration.language);
+            } else
+                profile = profiles.get(activeProfile);
+        } else if (!profile.name.equals(activeProfile) || readIniValue("profile") == null)
+            saveProfiles(profiles, profile, null);
         
         label.setText(language.getString("loading..."));
+        if (profile == null)
+            return;
+        
+        // Each profile has its own preloader caches, the application itself only reads the settings of the active profile
+        isMess = profile.isMess;
+        cachePath = CACHE_ROOT.resolve(profile.name);
+        if (!profile.mamePath.isBlank())
+            mameExecutable = Paths.get(profile.mamePath);
+        
+        // Index the EXTRAs and the Multimedia in the background while the application is initialising
+        if (!profile.extrasPath.isBlank())
+            DatIndex.preload(Paths.get(profile.extrasPath));
+        if (!profile.multimediaPath.isBlank())
+            ThumbnailAtlas.preload(Paths.get(profile.multimediaPath));
+        
+        // Index the software lists while the splash is shown, until the application reports its own progress
+        if (!profile.mamePath.isBlank()) {
+            Path mameFolder = Paths.get(profile.mamePath).toAbsolutePath().getParent();
+            Path hashFolder = null;
+            try {
+                hashFolder = PathUtil.readMameSearchPath(mameFolder, "hashpath", "hash").stream().filter(
+                    Files::isDirectory
+                ).findFirst().orElse(null);
+            } catch (IOException ex) {
+                Logger.getLogger(NegatronPreloader.class.getName()).log(Level.WARNING, "Couldn't read the hash path from mame.ini", ex);
+            }
+            if (hashFolder != null) {
+                label.setText(getString("indexingSoftwareLists...", "Indexing software lists..."));
+                SoftwareListIndex.preload(hashFolder, progress -> Platform.runLater(() -> {
+                    if (!isApplicationProgressing) {
+                        bar.setProgress(progress);
+                        if (progress >= 1.0)
+                            label.setText(language.getString("loading..."));
+                    }
+                }));
+            }
+        }
+    }
+    
+    private String getString(String key, String defaultValue) {
+        return language.containsKey(key) ? language.getString(key) : defaultValue;
+    }
+    
+    private static String readIniValue(String key) throws IOException {
+        if (Files.notExists(NEGATRON_INI))
+            return null;
+        try (Stream<String> lines = Files.lines(NEGATRON_INI)) {
+            return lines.filter(
+                line -> line.startsWith(key + " ")
+            ).findAny().map(
+                line -> line.substring(key.length()).trim().replace("\"", "")
+            ).orElse(null);
+        }
+    }
+    
+    /**
+     * Profile names are used as cache folder names, hence case insensitive and restricted to PROFILE_MASK.
+     */
+    private static boolean isValidProfileName(String name, Set<String> existingNames) {
+        return name != null && name.matches(PROFILE_MASK) && !existingNames.contains(name);
+    }
+    
+    private static Map<String, Profile> loadProfiles() throws IOException {
+        Map<String, Profile> profiles = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (Files.notExists(NEGATRON_INI))
+            return profiles;
+        
+        // profile.<name>.<key> <value>
+        Map<String, Map<String, String>> settings = new TreeMap<>();
+        for (String line : Files.readAllLines(NEGATRON_INI)) {
+            int space = line.indexOf(' ');
+            if (!line.startsWith(PROFILE_PREFIX) || space < 0)
+                continue;
+            String key = line.substring(PROFILE_PREFIX.length(), space);
+            int dot = key.lastIndexOf('.');
+            if (dot > 0)
+                settings.computeIfAbsent(key.substring(0, dot), name -> new HashMap<>()).put(
+                    key.substring(dot + 1), line.substring(space).trim().replace("\"", "")
+                );
+        }
+        settings.forEach((name, values) -> {
+            boolean isMessProfile = !values.containsKey("mame") && values.containsKey("mess");
+            String mamePath = values.get(isMessProfile ? "mess" : "mame");
+            if (mamePath == null)
+                return;
+            if (isValidProfileName(name, profiles.keySet()))
+                profiles.put(name, new Profile(name, mamePath, isMessProfile, values.get("extras"), values.get("multimedia")));
+            else
+                Logger.getLogger(NegatronPreloader.class.getName()).log(Level.WARNING, "Ignoring invalid or duplicate profile {0}", name);
+        });
+        
+        // Negatron reads and writes the top-level settings, so they prevail over the copy kept in the active profile,
+        // and make up the default profile of an ini file written before profiles were supported
+        String mamePath = readIniValue("mame");
+        boolean isMessProfile = mamePath == null;
+        if (isMessProfile)
+            mamePath = readIniValue("mess");
+        if (mamePath != null) {
+            String activeProfile = readIniValue("profile");
+            Profile profile = profiles.get(activeProfile != null ? activeProfile : DEFAULT_PROFILE);
+            String name = profile != null ? profile.name : profiles.isEmpty() ? DEFAULT_PROFILE : null;
+            if (name != null)
+                profiles.put(name, new Profile(
+                    name, mamePath, isMessProfile, readIniValue("extras"), readIniValue("multimedia")
+                ));
+        }
+        
+        return profiles;
+    }
+    
+    /**
+     * Write all the profiles into the ini file, the active one being also written as the main settings read by Negatron.
+     */
+    private static void saveProfiles(Map<String, Profile> profiles, Profile activeProfile, String language) {
+        try {
+            List<String> lines = Files.exists(NEGATRON_INI) ? Files.readAllLines(NEGATRON_INI) : new ArrayList<>();
+            lines.removeIf(line -> Stream.of(
+                "mame ", "mess ", "extras ", "multimedia ", "profile ", PROFILE_PREFIX
+            ).anyMatch(line::startsWith) || language != null && line.startsWith("language "));
+            
+            List<String> settings = new ArrayList<>();
+            writeProfile(settings, "", activeProfile);
+            if (language != null)
+                settings.add(toIniLine("language", language));
+            settings.add(toIniLine("profile", activeProfile.name));
+            lines.addAll(0, settings);
+            for (Profile profile : profiles.values())
+                writeProfile(lines, PROFILE_PREFIX + profile.name + ".", profile);
+            
+            Files.write(NEGATRON_INI, lines);
+        } catch (IOException ex) {
+            Logger.getLogger(NegatronPreloader.class.getName()).log(Level.SEVERE, "Couldn't write ini file", ex);
+        }
+    }
+    
+    private static void writeProfile(List<String> lines, String prefix, Profile profile) {
+        String path = profile.mamePath;
+        if (path.contains(" "))
+            path = "\"" + path + "\"";
+        lines.add(toIniLine(prefix + (profile.isMess ? "mess" : "mame"), path));
+        lines.add(toIniLine(prefix + "extras", profile.extrasPath));
+        lines.add(toIniLine(prefix + "multimedia", profile.multimediaPath));
+    }
+    
+    private static String toIniLine(String key, String value) {
+        return String.format("%-25s %s", key, value);
+    }
+    
+    private Profile pickProfile(Map<String, Profile> profiles, String activeProfile) {
+        String newProfile = getString("profile.new", "New profile...");
+        List<String> choices = new ArrayList<>(profiles.keySet());
+        choices.add(newProfile);
+        
+        ChoiceDialog<String> dialog = new ChoiceDialog<>(
+            profiles.containsKey(activeProfile) ? activeProfile : choices.get(0), choices
+        );
+        dialog.initOwner(stage);
+        dialog.setTitle(getString("profile", "Profile"));
+        dialog.setHeaderText(getString("profile.text", "Select the MAME profile to start Negatron with"));
+        dialog.setGraphic(new ImageView(getClass().getResource("resource/MAME.png").toExternalForm()));
+        
+        Optional<String> choice = dialog.showAndWait();
+        if (choice.isEmpty())
+            return profiles.get(activeProfile);
+        else if (choice.get().equals(newProfile))
+            return null; // to be configured
+        else
+            return profiles.get(choice.get());
     }
 
     private Scene createPreloaderScene() throws IOException {
@@ -233,7 +477,10 @@ public class NegatronPreloader extends Preloader {
         return scene;
     }
     
-    private Dialog<Configuration> createPromptDialog() {
+    /**
+     * @param existingProfiles names of the profiles already configured, which can't be reused
+     */
+    private Dialog<Configuration> createPromptDialog(String profileName, Set<String> existingProfiles) {
         Dialog<Configuration> dialog = new Dialog<>();
         dialog.setTitle(language.getString("configuration"));
         dialog.setHeaderText(language.getString("configuration.text"));
@@ -258,6 +505,8 @@ public class NegatronPreloader extends Preloader {
         Button multimediaButton = new Button(language.getString("browse..."));
         Label languageLabel = new Label(language.getString("language"));
         ChoiceBox<Locale> languageChoice = new ChoiceBox<>();
+        Label profileLabel = new Label(getString("profile", "Profile"));
+        TextField profile = new TextField(profileName);
         
         // Initialise MAME path controls
         mamePath.setPromptText(language.getString("mame.prompt"));
@@ -412,6 +661,15 @@ public class NegatronPreloader extends Preloader {
             multimediaPath.setPromptText(language.getString("multimedia.prompt"));
             multimediaButton.setText(language.getString("browse..."));
             languageLabel.setText(language.getString("language"));
+            profileLabel.setText(getString("profile", "Profile"));
+            profile.setPromptText(getString("profile.prompt", "Name of the profile, e.g. default"));
+        });
+        
+        // Initialise profile controls
+        profile.setPromptText(getString("profile.prompt", "Name of the profile, e.g. default"));
+        profile.pseudoClassStateChanged(ERROR_CLASS, !isValidProfileName(profileName, existingProfiles));
+        profile.textProperty().addListener((o, oV, newValue) -> {
+            profile.pseudoClassStateChanged(ERROR_CLASS, !isValidProfileName(newValue, existingProfiles));
         });
 
         // Finish setting up dialog box
@@ -430,11 +688,16 @@ public class NegatronPreloader extends Preloader {
         grid.add(multimediaButton, 2, 2);
         grid.add(languageLabel, 0, 3);
         grid.add(languageChoice, 1, 3, 2, 1);
+        grid.add(profileLabel, 0, 4);
+        grid.add(profile, 1, 4, 2, 1);
 
         Node okButton = dialog.getDialogPane().lookupButton(ButtonType.OK);
         okButton.setDisable(true);
         mamePath.textProperty().addListener((o, oV, newValue) -> {
-            okButton.setDisable(newValue == null || newValue.isBlank());
+            okButton.setDisable(newValue == null || newValue.isBlank() || !isValidProfileName(profile.getText(), existingProfiles));
+        });
+        profile.textProperty().addListener((o, oV, newValue) -> {
+            okButton.setDisable(!isValidProfileName(newValue, existingProfiles) || mamePath.getText().isBlank());
         });
         dialog.getDialogPane().setContent(grid);
 
@@ -443,6 +706,7 @@ public class NegatronPreloader extends Preloader {
         dialog.setResultConverter(dialogButton -> {
             if (dialogButton == ButtonType.OK)
                 return new Configuration(
+                    profile.getText(),
                     mamePath.getText(),
                     extrasPath.getText(),
                     multimediaPath.getText(),
@@ -483,6 +747,7 @@ public class NegatronPreloader extends Preloader {
             //expect application to send us progress notifications 
             //with progress ranging from 0 to 1.0
             double v = ((ProgressNotification) pn).getProgress();
+            isApplicationProgressing = true;
             if (v < 0.99) {
                 bar.setProgress(v);
                 label.setText(language.getString("processingMameInput...").replace(MAME, isMess ? MESS : MAME));
@@ -490,8 +755,23 @@ public class NegatronPreloader extends Preloader {
                 bar.setProgress(ProgressIndicator.INDETERMINATE_PROGRESS);
                 label.setText(language.getString("formattingData..."));
             }
+        } else if (pn instanceof RomVerifier.Notification) {
+            //expect application to send us romset verification progress
+            //ranging from 0 to 1.0
+            double v = ((RomVerifier.Notification) pn).getProgress();
+            isApplicationProgressing = true;
+            bar.setProgress(v);
+            label.setText(getString("verifyingRomsets...", "Verifying romsets..."));
         } else if (pn instanceof StateChangeNotification) {
             //hide after get any state update from application
+            warmUp.cancel();
+            WarmUp.record(
+                NEGATRON_INI.resolveSibling(WarmUp.CLASS_LIST),
+                mameExecutable != null ? List.of(mameExecutable) : List.of()
+            );
+            bar.setProgress(ProgressIndicator.INDETERMINATE_PROGRESS);
+            label.setText(language.getString("loading..."));
+            Splash.save(stage.getScene(), stage.getOutputScaleX(), NEGATRON_INI.getParent());
             stage.hide();
             notifier.onPreloadingSucceeded();
         } else if (pn instanceof ErrorNotification) {
@@ -18,13 +18,17 @@
 package net.babelsoft.negatron.preloader;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  *
@@ -39,6 +43,46 @@ public final class PathUtil {
         FOLDER
     }
     
+    @FunctionalInterface
+    public interface FileWriter {
+        void write(Path file) throws IOException;
+    }
+    
+    /**
+     * Write a file through a temporary sibling then move it into place,
+     * so that concurrent readers and the next launch never pick up a half-written file.
+     */
+    public static void writeAtomically(Path file, FileWriter writer) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            writer.write(temp);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+    
+    /**
+     * Read a search path option of mame.ini like rompath or hashpath, relative folders being resolved against the MAME folder.
+     */
+    public static List<Path> readMameSearchPath(Path mameFolder, String option, String defaultValue) throws IOException {
+        String searchPath = defaultValue;
+        Path mameIni = mameFolder.resolve("mame.ini");
+        if (Files.exists(mameIni)) try (Stream<String> lines = Files.lines(mameIni)) {
+            searchPath = lines.filter(
+                line -> line.startsWith(option + " ")
+            ).findAny().map(
+                line -> line.substring(option.length()).trim().replace("\"", "")
+            ).orElse(searchPath);
+        }
+        return Arrays.stream(searchPath.split(";")).filter(
+            folder -> !folder.isBlank()
+        ).map(
+            folder -> mameFolder.resolve(folder.trim()).normalize()
+        ).collect(Collectors.toList());
+    }
+    
     public static Path retrieveFromJavaLibraryPaths(PathType pathType, String... pathComponents) {
         // Retrieve all the potential root folders
         final List<String> rootFolders = new ArrayList<>();
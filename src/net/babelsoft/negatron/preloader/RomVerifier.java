@@ -0,0 +1,427 @@
+/*
+ * This file is part of Negatron.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.babelsoft.negatron.preloader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javafx.application.Preloader.PreloaderNotification;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Verify the romsets by running several "mame -verifyroms" processes in parallel, each of them on a shard of the machine list.
+ * Results are persisted in the cache folder along with a fingerprint of each romset files,
+ * so that only the romsets whose files changed since the previous verification are verified again.
+ * The fingerprint of a romset also covers the romsets it depends on, as listed by "mame -listxml":
+ * its parent and BIOS through romof, and the devices holding their own ROMs through device_ref.
+ * That machine list is cached along with the statuses, and only listed again when the MAME executable changes.
+ */
+public final class RomVerifier {
+
+    public enum Status {
+        GOOD,
+        BEST_AVAILABLE,
+        BAD,
+        NOT_FOUND,
+        NONE_NEEDED // the machine doesn't use any ROM or disk, e.g. discrete machines like pong
+    }
+
+    /**
+     * To be sent by the application to the preloader to report the verification progress, ranging from 0 to 1.0.
+     */
+    public static class Notification implements PreloaderNotification {
+        private final double progress;
+
+        public Notification(double progress) {
+            this.progress = progress;
+        }
+
+        public double getProgress() {
+            return progress;
+        }
+    }
+
+    private static final String CACHE_FILE = "verifyroms.cache";
+    private static final String CACHE_HEADER = "# Negatron romset statuses, version 2";
+    private static final String NO_FILES = "-";
+    private static final String NONE = "-";
+    private static final char MACHINE_FLAG = 'm';
+    private static final char ROMS_FLAG = 'r';
+    private static final int MAX_SHARD_SIZE = 256;
+    // stay well below the command line length limit of Windows
+    private static final int MAX_SHARD_LENGTH = 8000;
+    private static final Pattern RESULT = Pattern.compile("^romset (\\S+) (?:\\[\\S+\\] )?is (good|best available|bad)");
+
+    private final Path mameExecutable;
+    private final Path mameFolder;
+    // the MAME processes still running, to be stopped when the verification is interrupted
+    private final Set<Process> processes = ConcurrentHashMap.newKeySet();
+
+    public RomVerifier(Path mameExecutable) {
+        this.mameExecutable = mameExecutable.toAbsolutePath();
+        this.mameFolder = this.mameExecutable.getParent();
+    }
+
+    /**
+     * The romsets listed by "mame -listxml", devices included.
+     */
+    private static class MachineList {
+        // the machines to be verified, devices excluded
+        private final List<String> machines = new ArrayList<>();
+        // the romsets each romset directly depends on
+        private final Map<String, List<String>> dependencies = new LinkedHashMap<>();
+        // the romsets declaring some ROMs or disks by themselves
+        private final Set<String> romsetsWithRoms = new HashSet<>();
+    }
+
+    /**
+     * Verify the romsets whose files changed since the previous verification, and retrieve the status of all of them.
+     * @param progress notified with values ranging from 0 to 1.0, from the verification threads
+     */
+    public Map<String, Status> verify(DoubleConsumer progress) throws IOException, InterruptedException {
+        Path cacheFile = NegatronPreloader.getCachePath().resolve(CACHE_FILE);
+        String mameFingerprint = fingerprint(mameExecutable);
+        Map<String, CacheEntry> cache = new HashMap<>();
+        MachineList machineList = loadCache(cacheFile, mameFingerprint, cache);
+        if (machineList == null) {
+            MachineList parsedList = new MachineList();
+            runMame(output -> parseMachines(output, parsedList), false, "-listxml");
+            machineList = parsedList;
+        }
+
+        // devices aren't verified by themselves but their ROMs are part of the machines using them
+        Map<String, String> romsetFingerprints = new HashMap<>();
+        List<Path> romFolders = PathUtil.readMameSearchPath(mameFolder, "rompath", "roms");
+        for (String romset : machineList.dependencies.keySet())
+            romsetFingerprints.put(romset, fingerprint(romFolders, romset));
+
+        Map<String, Status> statuses = new ConcurrentHashMap<>();
+        Map<String, String> fingerprints = new HashMap<>();
+        List<String> pending = new ArrayList<>();
+        for (String machine : machineList.machines) {
+            String fingerprint = romsetFingerprints.get(machine);
+            boolean hasFiles = !fingerprint.equals(NO_FILES);
+            boolean needsRoms = machineList.romsetsWithRoms.contains(machine);
+            StringBuilder dependencyFingerprints = new StringBuilder();
+            for (String dependency : getDependencies(machine, machineList.dependencies)) {
+                String dependencyFingerprint = romsetFingerprints.getOrDefault(dependency, NO_FILES);
+                dependencyFingerprints.append(dependency).append('=').append(dependencyFingerprint).append(';');
+                hasFiles |= !dependencyFingerprint.equals(NO_FILES);
+                needsRoms |= machineList.romsetsWithRoms.contains(dependency);
+            }
+            if (dependencyFingerprints.length() > 0)
+                fingerprint += "+" + Integer.toHexString(dependencyFingerprints.toString().hashCode());
+            fingerprints.put(machine, fingerprint);
+
+            CacheEntry cached = cache.get(machine);
+            if (!needsRoms)
+                statuses.put(machine, Status.NONE_NEEDED); // MAME doesn't report anything about them
+            else if (cached != null && cached.fingerprint.equals(fingerprint))
+                statuses.put(machine, cached.status);
+            else if (!hasFiles)
+                statuses.put(machine, Status.NOT_FOUND); // nothing to verify
+            else
+                pending.add(machine);
+        }
+
+        if (!pending.isEmpty())
+            verifyShards(pending, statuses, progress);
+        progress.accept(1.0);
+
+        saveCache(cacheFile, mameFingerprint, machineList, statuses, fingerprints);
+        return statuses;
+    }
+
+    private void verifyShards(List<String> pending, Map<String, Status> statuses, DoubleConsumer progress) throws IOException, InterruptedException {
+        List<List<String>> shards = new ArrayList<>();
+        List<String> shard = new ArrayList<>();
+        int shardLength = 0;
+        for (String machine : pending) {
+            if (shard.size() >= MAX_SHARD_SIZE || shardLength + machine.length() + 1 > MAX_SHARD_LENGTH) {
+                shards.add(shard);
+                shard = new ArrayList<>();
+                shardLength = 0;
+            }
+            shard.add(machine);
+            shardLength += machine.length() + 1;
+        }
+        shards.add(shard);
+
+        AtomicInteger done = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(shards.size(), Runtime.getRuntime().availableProcessors())
+        );
+        try {
+            List<Future<?>> tasks = new ArrayList<>(shards.size());
+            for (List<String> machines : shards) {
+                tasks.add(executor.submit(() -> {
+                    List<String> arguments = new ArrayList<>(machines.size() + 1);
+                    arguments.add("-verifyroms");
+                    arguments.addAll(machines);
+                    runMame(line -> {
+                        Matcher matcher = RESULT.matcher(line);
+                        if (matcher.find())
+                            statuses.put(matcher.group(1), Status.valueOf(matcher.group(2).replace(' ', '_').toUpperCase()));
+                    }, arguments.toArray(new String[arguments.size()]));
+                    // the romsets not reported by MAME are missing
+                    machines.forEach(machine -> statuses.putIfAbsent(machine, Status.NOT_FOUND));
+                    progress.accept((double) done.addAndGet(machines.size()) / pending.size());
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks)
+                task.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+            // interrupting the threads doesn't unblock them while they're reading the output of MAME
+            processes.forEach(Process::destroy);
+        }
+    }
+
+    private static void parseMachines(InputStream output, MachineList machineList) throws IOException {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(output);
+            String name = null;
+            List<String> machineDependencies = null;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                switch (reader.getLocalName()) {
+                    case "machine":
+                    case "game": // MAME versions older than 0.162
+                        name = reader.getAttributeValue(null, "name");
+                        machineDependencies = new ArrayList<>(1);
+                        machineList.dependencies.put(name, machineDependencies);
+                        String romOf = reader.getAttributeValue(null, "romof");
+                        if (romOf != null)
+                            machineDependencies.add(romOf);
+                        if (!"yes".equals(reader.getAttributeValue(null, "isdevice")))
+                            machineList.machines.add(name);
+                        break;
+                    case "device_ref":
+                        if (machineDependencies != null)
+                            machineDependencies.add(reader.getAttributeValue(null, "name"));
+                        break;
+                    case "rom":
+                    case "disk":
+                        if (name != null)
+                            machineList.romsetsWithRoms.add(name);
+                        break;
+                }
+            }
+            reader.close();
+        } catch (XMLStreamException ex) {
+            throw new IOException("Couldn't parse the output of mame -listxml", ex);
+        }
+    }
+
+    /**
+     * @return the romsets a machine transitively depends on, in a stable order
+     */
+    private static Set<String> getDependencies(String machine, Map<String, List<String>> dependencies) {
+        Set<String> closure = new TreeSet<>();
+        Deque<String> pending = new ArrayDeque<>(dependencies.getOrDefault(machine, List.of()));
+        while (!pending.isEmpty()) {
+            String dependency = pending.pop();
+            if (!dependency.equals(machine) && closure.add(dependency))
+                pending.addAll(dependencies.getOrDefault(dependency, List.of()));
+        }
+        return closure;
+    }
+
+    private interface LineConsumer {
+        void accept(String line);
+    }
+
+    private interface OutputConsumer {
+        void accept(InputStream output) throws IOException;
+    }
+
+    private void runMame(LineConsumer consumer, String... arguments) throws IOException, InterruptedException {
+        runMame(output -> {
+            try (
+                InputStreamReader stream = new InputStreamReader(output);
+                BufferedReader reader = new BufferedReader(stream);
+            ) {
+                String line;
+                while ((line = reader.readLine()) != null)
+                    consumer.accept(line);
+            }
+        }, true, arguments);
+    }
+
+    /**
+     * @param isErrorMerged false to discard the error output, e.g. not to corrupt the XML output of -listxml
+     */
+    private void runMame(OutputConsumer consumer, boolean isErrorMerged, String... arguments) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(arguments.length + 1);
+        command.add(mameExecutable.toString());
+        command.addAll(Arrays.asList(arguments));
+        ProcessBuilder pb = new ProcessBuilder(command).directory(mameFolder.toFile());
+        if (isErrorMerged)
+            pb.redirectErrorStream(true);
+        else
+            pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+        Process process = pb.start();
+        processes.add(process);
+        boolean isComplete = false;
+        try (InputStream output = process.getInputStream()) {
+            consumer.accept(output);
+            isComplete = true;
+        } finally {
+            if (!isComplete)
+                process.destroy();
+            process.waitFor();
+            processes.remove(process);
+        }
+    }
+
+    private static String fingerprint(List<Path> romFolders, String machine) throws IOException {
+        StringBuilder fingerprint = new StringBuilder();
+        for (Path romFolder : romFolders) {
+            for (String name : new String[] { machine + ".zip", machine + ".7z" })
+                fingerprint.append(fingerprint(romFolder.resolve(name)));
+            Path folder = romFolder.resolve(machine);
+            if (Files.isDirectory(folder)) try (Stream<Path> files = Files.list(folder)) {
+                for (Path file : files.sorted().collect(Collectors.toList()))
+                    fingerprint.append(fingerprint(file));
+            }
+        }
+        return fingerprint.length() == 0 ? NO_FILES : Integer.toHexString(fingerprint.toString().hashCode());
+    }
+
+    private static String fingerprint(Path file) throws IOException {
+        if (!Files.isRegularFile(file))
+            return "";
+        return file.getFileName() + ":" + Files.size(file) + ":" + Files.getLastModifiedTime(file).toMillis() + ";";
+    }
+
+    private static class CacheEntry {
+        private final Status status;
+        private final String fingerprint;
+
+        private CacheEntry(Status status, String fingerprint) {
+            this.status = status;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * @param cache filled with the statuses of the previous verification
+     * @return the machine list of the previous verification, or null if it must be listed again
+     */
+    private static MachineList loadCache(Path cacheFile, String mameFingerprint, Map<String, CacheEntry> cache) {
+        if (Files.notExists(cacheFile))
+            return null;
+        MachineList machineList = new MachineList();
+        try (BufferedReader reader = Files.newBufferedReader(cacheFile)) {
+            // a different MAME version means that every romset must be listed and verified again
+            if (!CACHE_HEADER.equals(reader.readLine()) || !mameFingerprint.equals(reader.readLine()))
+                return null;
+            // name flags dependencies status fingerprint
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split(" ");
+                if (columns.length != 5)
+                    throw new IOException("Invalid line " + line);
+                String name = columns[0];
+                machineList.dependencies.put(name, columns[2].equals(NONE) ? List.of() : List.of(columns[2].split(",")));
+                if (columns[1].indexOf(MACHINE_FLAG) >= 0)
+                    machineList.machines.add(name);
+                if (columns[1].indexOf(ROMS_FLAG) >= 0)
+                    machineList.romsetsWithRoms.add(name);
+                if (!columns[3].equals(NONE))
+                    cache.put(name, new CacheEntry(Status.valueOf(columns[3]), columns[4]));
+            }
+        } catch (IOException | IllegalArgumentException ex) {
+            cache.clear(); // corrupted cache, list and verify everything again
+            return null;
+        }
+        return machineList;
+    }
+
+    private static void saveCache(
+        Path cacheFile, String mameFingerprint, MachineList machineList, Map<String, Status> statuses, Map<String, String> fingerprints
+    ) {
+        Set<String> machines = new HashSet<>(machineList.machines);
+        try {
+            PathUtil.writeAtomically(cacheFile, temp -> {
+                try (BufferedWriter writer = Files.newBufferedWriter(temp)) {
+                    writer.write(CACHE_HEADER); writer.newLine();
+                    writer.write(mameFingerprint); writer.newLine();
+                    for (Map.Entry<String, List<String>> entry : machineList.dependencies.entrySet()) {
+                        String name = entry.getKey();
+                        String flags = "";
+                        if (machines.contains(name))
+                            flags += MACHINE_FLAG;
+                        if (machineList.romsetsWithRoms.contains(name))
+                            flags += ROMS_FLAG;
+                        Status status = statuses.get(name);
+                        writer.write(String.join(" ",
+                            name,
+                            flags.isEmpty() ? NONE : flags,
+                            entry.getValue().isEmpty() ? NONE : String.join(",", entry.getValue()),
+                            status != null ? status.name() : NONE,
+                            fingerprints.getOrDefault(name, NONE)
+                        ));
+                        writer.newLine();
+                    }
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(RomVerifier.class.getName()).log(Level.WARNING, "Couldn't save the romset statuses", ex);
+        }
+    }
+}
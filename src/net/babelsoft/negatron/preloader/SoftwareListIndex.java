@@ -0,0 +1,371 @@
+/*
+ * This file is part of Negatron.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.babelsoft.negatron.preloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleConsumer;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Compact index of a MAME/MESS software list, i.e. of one of the hash/*.xml files.
+ * Software lists are parsed in parallel by a streaming StAX parser, and each of them is persisted
+ * in the cache folder as a binary file holding a deduplicated string table.
+ * Only the software lists whose XML file size or mtime changed are parsed again.
+ */
+public final class SoftwareListIndex {
+
+    private static final int MAGIC = 0x4E534C49; // NSLI
+    private static final int VERSION = 2;
+    // id of the missing attributes, e.g. of a part without interface, to be read back as null
+    private static final int NULL_ID = -1;
+    private static final String FOLDER = "softwarelists";
+    // shared by all the software lists as the same part names and interfaces are used over and over
+    private static final Map<String, String> STRINGS = new ConcurrentHashMap<>();
+
+    private static Path pendingFolder;
+    private static List<Future<SoftwareListIndex>> pendingTasks;
+
+    public static final class Part {
+        private final String name;
+        private final String interfaceName;
+
+        private Part(String name, String interfaceName) {
+            this.name = name;
+            this.interfaceName = interfaceName;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getInterface() {
+            return interfaceName;
+        }
+    }
+
+    public static final class Software {
+        private final String name;
+        private final List<Part> parts;
+
+        private Software(String name, List<Part> parts) {
+            this.name = name;
+            this.parts = parts;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<Part> getParts() {
+            return parts;
+        }
+    }
+
+    private final String name;
+    private final String description;
+    private final Map<String, Software> software;
+
+    private SoftwareListIndex(String name, String description, Map<String, Software> software) {
+        this.name = name;
+        this.description = description;
+        this.software = software;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public Map<String, Software> getSoftware() {
+        return software;
+    }
+
+    private static String intern(String string) {
+        if (string == null)
+            return null;
+        String interned = STRINGS.putIfAbsent(string, string);
+        return interned != null ? interned : string;
+    }
+
+    /**
+     * Index in the background every software list of the hash folder, ahead of the other background tasks.
+     * @param progress notified with values ranging from 0 to 1.0, from the background threads
+     */
+    public static synchronized void preload(Path hashFolder, DoubleConsumer progress) {
+        hashFolder = hashFolder.toAbsolutePath().normalize();
+        try {
+            pendingTasks = submit(hashFolder, progress);
+            pendingFolder = hashFolder;
+        } catch (IOException ex) {
+            Logger.getLogger(SoftwareListIndex.class.getName()).log(Level.WARNING, "Couldn't browse the hash folder", ex);
+        }
+    }
+
+    /**
+     * Retrieve the indexes of every software list, waiting for them if they're being built in the background.
+     * @return the indexes mapped by software list names
+     */
+    public static Map<String, SoftwareListIndex> open(Path hashFolder) throws IOException {
+        hashFolder = hashFolder.toAbsolutePath().normalize();
+        List<Future<SoftwareListIndex>> tasks;
+        synchronized (SoftwareListIndex.class) {
+            if (hashFolder.equals(pendingFolder))
+                tasks = pendingTasks;
+            else
+                tasks = submit(hashFolder, progress -> { });
+        }
+
+        Map<String, SoftwareListIndex> indexes = new LinkedHashMap<>();
+        try {
+            for (Future<SoftwareListIndex> task : tasks) {
+                SoftwareListIndex index = task.get();
+                if (index != null)
+                    indexes.put(index.name, index);
+            }
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+        return indexes;
+    }
+
+    private static List<Future<SoftwareListIndex>> submit(Path hashFolder, DoubleConsumer progress) throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(hashFolder)) {
+            files = stream.filter(
+                file -> file.getFileName().toString().toLowerCase().endsWith(".xml")
+            ).sorted().collect(Collectors.toList());
+        }
+
+        Path indexFolder = NegatronPreloader.getCachePath().resolve(FOLDER);
+        Files.createDirectories(indexFolder);
+        removeOrphans(indexFolder, files);
+
+        AtomicInteger done = new AtomicInteger();
+        List<Future<SoftwareListIndex>> tasks = new ArrayList<>(files.size());
+        for (Path file : files) {
+            tasks.add(Background.ProgressTasks.submit(() -> {
+                try {
+                    return load(file, getIndexFile(indexFolder, file));
+                } finally {
+                    progress.accept((double) done.incrementAndGet() / files.size());
+                }
+            }));
+        }
+        return tasks;
+    }
+
+    private static Path getIndexFile(Path indexFolder, Path xmlFile) {
+        String name = xmlFile.getFileName().toString();
+        return indexFolder.resolve(name.substring(0, name.length() - 4) + ".idx");
+    }
+
+    private static void removeOrphans(Path indexFolder, List<Path> xmlFiles) throws IOException {
+        Set<Path> indexFiles = xmlFiles.stream().map(
+            file -> getIndexFile(indexFolder, file)
+        ).collect(Collectors.toSet());
+        try (Stream<Path> stream = Files.list(indexFolder)) {
+            // leave alone the temporary files of the indexes being saved
+            for (Path file : stream.filter(
+                file -> file.getFileName().toString().endsWith(".idx") && !indexFiles.contains(file)
+            ).collect(Collectors.toList()))
+                Files.deleteIfExists(file);
+        }
+    }
+
+    private static SoftwareListIndex load(Path xmlFile, Path indexFile) throws IOException {
+        long size = Files.size(xmlFile);
+        long lastModified = Files.getLastModifiedTime(xmlFile).toMillis();
+
+        if (Files.exists(indexFile)) try (DataInputStream input = new DataInputStream(
+            new BufferedInputStream(Files.newInputStream(indexFile))
+        )) {
+            if (
+                input.readInt() == MAGIC && input.readInt() == VERSION &&
+                input.readUTF().equals(xmlFile.toString()) &&
+                input.readLong() == size && input.readLong() == lastModified
+            )
+                return read(input);
+        } catch (IOException ex) { } // corrupted index, rebuild it
+
+        SoftwareListIndex index;
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(xmlFile))) {
+            index = parse(input);
+        } catch (XMLStreamException ex) {
+            Logger.getLogger(SoftwareListIndex.class.getName()).log(Level.WARNING, "Couldn't parse " + xmlFile, ex);
+            return null;
+        }
+        if (index != null)
+            index.save(indexFile, xmlFile.toString(), size, lastModified);
+        return index;
+    }
+
+    private static SoftwareListIndex parse(InputStream input) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        XMLStreamReader reader = factory.createXMLStreamReader(input);
+        try {
+            String listName = null;
+            String listDescription = null;
+            Map<String, Software> software = new LinkedHashMap<>();
+            List<Part> parts = null;
+
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                switch (reader.getLocalName()) {
+                    case "softwarelist":
+                        listName = intern(reader.getAttributeValue(null, "name"));
+                        listDescription = reader.getAttributeValue(null, "description");
+                        break;
+                    case "software":
+                        String softwareName = intern(reader.getAttributeValue(null, "name"));
+                        parts = new ArrayList<>(1);
+                        software.put(softwareName, new Software(softwareName, Collections.unmodifiableList(parts)));
+                        break;
+                    case "part":
+                        if (parts != null)
+                            parts.add(new Part(
+                                intern(reader.getAttributeValue(null, "name")),
+                                intern(reader.getAttributeValue(null, "interface"))
+                            ));
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            if (listName == null)
+                return null;
+            return new SoftwareListIndex(listName, listDescription, Collections.unmodifiableMap(software));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static SoftwareListIndex read(DataInputStream input) throws IOException {
+        String[] strings = new String[input.readInt()];
+        for (int i = 0; i < strings.length; ++i)
+            strings[i] = intern(input.readUTF());
+
+        String listName = readString(input, strings);
+        String listDescription = readString(input, strings);
+        int softwareCount = input.readInt();
+        Map<String, Software> software = new LinkedHashMap<>(softwareCount * 4 / 3 + 1);
+        for (int i = 0; i < softwareCount; ++i) {
+            String softwareName = readString(input, strings);
+            Part[] parts = new Part[input.readInt()];
+            for (int j = 0; j < parts.length; ++j)
+                parts[j] = new Part(readString(input, strings), readString(input, strings));
+            software.put(softwareName, new Software(softwareName, List.of(parts)));
+        }
+        return new SoftwareListIndex(listName, listDescription, Collections.unmodifiableMap(software));
+    }
+
+    private static String readString(DataInputStream input, String[] strings) throws IOException {
+        int id = input.readInt();
+        if (id == NULL_ID)
+            return null;
+        if (id < 0 || id >= strings.length)
+            throw new IOException("Invalid string id " + id);
+        return strings[id];
+    }
+
+    private void save(Path indexFile, String source, long size, long lastModified) {
+        Map<String, Integer> stringIds = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        ToIntFunction<String> idOf = string -> string == null ? NULL_ID : stringIds.computeIfAbsent(
+            string, s -> { strings.add(s); return strings.size() - 1; }
+        );
+
+        // collect the string table first, as it's read back before anything else
+        idOf.applyAsInt(name);
+        idOf.applyAsInt(description);
+        software.values().forEach(soft -> {
+            idOf.applyAsInt(soft.name);
+            soft.parts.forEach(part -> {
+                idOf.applyAsInt(part.name);
+                idOf.applyAsInt(part.interfaceName);
+            });
+        });
+
+        try {
+            PathUtil.writeAtomically(indexFile, temp -> {
+                try (DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp))
+                )) {
+                    output.writeInt(MAGIC);
+                    output.writeInt(VERSION);
+                    output.writeUTF(source);
+                    output.writeLong(size);
+                    output.writeLong(lastModified);
+                    output.writeInt(strings.size());
+                    for (String string : strings)
+                        output.writeUTF(string);
+                    output.writeInt(idOf.applyAsInt(name));
+                    output.writeInt(idOf.applyAsInt(description));
+                    output.writeInt(software.size());
+                    for (Software soft : software.values()) {
+                        output.writeInt(idOf.applyAsInt(soft.name));
+                        output.writeInt(soft.parts.size());
+                        for (Part part : soft.parts) {
+                            output.writeInt(idOf.applyAsInt(part.name));
+                            output.writeInt(idOf.applyAsInt(part.interfaceName));
+                        }
+                    }
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(SoftwareListIndex.class.getName()).log(Level.WARNING, "Couldn't save the index of " + source, ex);
+        }
+    }
+}
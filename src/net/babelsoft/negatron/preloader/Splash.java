@@ -0,0 +1,153 @@
+/*
+ * This file is part of Negatron.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.babelsoft.negatron.preloader;
+
+import java.awt.Rectangle;
+import java.awt.SplashScreen;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.Scene;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.transform.Transform;
+import javax.imageio.ImageIO;
+
+/**
+ * Pre-rasterised copy of the preloader scene, skin and language included.
+ * Launching the JVM with -splash:Negatron.splash.png displays it before JavaFX is even initialised,
+ * the JVM picking up by itself Negatron.splash@2x.png or Negatron.splash@150pct.png and the like on HiDPI screens.
+ * The live preloader then takes over by showing its own stage at the same place and closing the splash.
+ *
+ * The image is saved beside Negatron.ini, which is the working folder when launched by Maven,
+ * and also in the application folder of packaged versions whenever it's writable,
+ * for jpackage to launch with --java-options -splash:$APPDIR/Negatron.splash.png
+ */
+public final class Splash {
+
+    public static final String IMAGE = "Negatron.splash.png";
+
+    private Splash() { }
+
+    public static void close() {
+        try {
+            SplashScreen splash = SplashScreen.getSplashScreen();
+            if (splash != null)
+                splash.close();
+        } catch (UnsupportedOperationException | IllegalStateException ex) { } // no splash to close, swallow exceptions
+    }
+
+    /**
+     * @return the screen area covered by the splash, or null if none is displayed
+     */
+    public static Rectangle2D getBounds() {
+        try {
+            SplashScreen splash = SplashScreen.getSplashScreen();
+            if (splash != null) {
+                Rectangle bounds = splash.getBounds();
+                return new Rectangle2D(bounds.getX(), bounds.getY(), bounds.getWidth(), bounds.getHeight());
+            }
+        } catch (UnsupportedOperationException | IllegalStateException ex) { } // no splash displayed, swallow exceptions
+        return null;
+    }
+
+    /**
+     * @return the name the JVM looks for on screens scaled by the given factor, e.g. @2x for 200% and @150pct for 150%
+     */
+    private static String getImageName(double scale) {
+        if (scale <= 1.0)
+            return IMAGE;
+        String suffix;
+        if (scale == Math.rint(scale))
+            suffix = "@" + (int) scale + "x";
+        else
+            suffix = "@" + Math.round(scale * 100) + "pct";
+        return IMAGE.replace(".png", suffix + ".png");
+    }
+
+    /**
+     * Must be called on the JavaFX Application Thread. The PNG files are encoded in the background.
+     */
+    public static void save(Scene scene, double outputScale, Path iniFolder) {
+        List<Path> folders = new ArrayList<>();
+        folders.add(iniFolder);
+        Path appFolder = getApplicationFolder();
+        if (appFolder != null && Files.isWritable(appFolder))
+            folders.add(appFolder);
+
+        double[] scales = outputScale > 1.0 ? new double[] { 1.0, outputScale } : new double[] { 1.0 };
+        int[][] pixels = new int[scales.length][];
+        WritableImage[] images = new WritableImage[pixels.length];
+        for (int i = 0; i < pixels.length; ++i) {
+            SnapshotParameters parameters = new SnapshotParameters();
+            parameters.setTransform(Transform.scale(scales[i], scales[i]));
+            images[i] = scene.getRoot().snapshot(parameters, null);
+            int width = (int) images[i].getWidth();
+            int height = (int) images[i].getHeight();
+            pixels[i] = new int[width * height];
+            images[i].getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels[i], 0, width);
+        }
+
+        Thread thread = new Thread(() -> {
+            for (int i = 0; i < pixels.length; ++i) {
+                int width = (int) images[i].getWidth();
+                int height = (int) images[i].getHeight();
+                BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                image.setRGB(0, 0, width, height, pixels[i], 0, width);
+                for (Path folder : folders)
+                    write(image, folder.resolve(getImageName(scales[i])));
+            }
+        }, "Negatron-Preloader-Splash");
+        thread.start();
+    }
+
+    /**
+     * @return the folder referenced by $APPDIR in the jpackage launcher configuration, or null if not packaged
+     */
+    private static Path getApplicationFolder() {
+        String exePath = System.getProperty("jpackage.app-path");
+        if (exePath == null || exePath.isBlank())
+            return null;
+        
+        Path exe = Paths.get(exePath);
+        String osName = System.getProperty("os.name").toLowerCase();
+        if (osName.contains("win"))
+            return exe.resolveSibling("app");
+        else if (osName.startsWith("mac os x"))
+            return exe.getParent().resolveSibling("app");
+        else // Linux
+            return exe.getParent().resolveSibling("lib/app");
+    }
+
+    private static void write(BufferedImage image, Path file) {
+        try {
+            PathUtil.writeAtomically(file, temp -> {
+                ImageIO.write(image, "png", temp.toFile());
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(Splash.class.getName()).log(Level.WARNING, "Couldn't save the splash image", ex);
+        }
+    }
+}
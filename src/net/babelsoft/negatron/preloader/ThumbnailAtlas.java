@@ -0,0 +1,360 @@
+/*
+ * This file is part of Negatron.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.babelsoft.negatron.preloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Persistent atlas of downsampled snaps and icons from the Multimedia folder.
+ * Thumbnails are stored as premultiplied ARGB pixels in fixed-size slots of a memory-mapped file,
+ * so that they can be displayed without decoding the original PNG/JPEG files.
+ * The atlas is sized after the collection, up to a maximum capacity.
+ * Preloading only fills the free slots, icons first, while the thumbnails actually requested and missing
+ * are decoded on demand, evicting the least recently used ones once the atlas is full.
+ * A thumbnail is discarded as soon as its source file mtime changes.
+ */
+public final class ThumbnailAtlas {
+
+    public static final int SLOT_WIDTH = 128;
+    public static final int SLOT_HEIGHT = 96;
+    private static final int SLOT_SIZE = SLOT_WIDTH * SLOT_HEIGHT;
+    // each slot starts with the hash of its key and the mtime of its source file, to be checked against the index
+    private static final int HEADER_SIZE = 3;
+    private static final int SLOT_STRIDE = HEADER_SIZE + SLOT_SIZE;
+    private static final long TOMBSTONE = -1L;
+    private static final int MIN_CAPACITY = 256;
+    private static final int MAX_CAPACITY = 4096;
+    private static final int BATCH_SIZE = 64;
+    private static final int MAGIC = 0x4E544841; // NTHA
+    private static final int VERSION = 2;
+    private static final String FOLDER = "thumbnails";
+    // icons are displayed by the dozen in the machine list, so they're preloaded first
+    private static final String[] SOURCE_FOLDERS = { "icons", "snap" };
+
+    private static ThumbnailAtlas instance;
+
+    private static class Entry {
+        private final long lastModified;
+        private final int slot;
+        private final int width;
+        private final int height;
+
+        private Entry(long lastModified, int slot, int width, int height) {
+            this.lastModified = lastModified;
+            this.slot = slot;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final Path multimediaFolder;
+    private final Path indexFile;
+    private final IntBuffer pixels;
+    private final int capacity;
+    // kept in access order, the eldest entry being the least recently used one
+    private final LinkedHashMap<String, Entry> entries;
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+
+    private ThumbnailAtlas(Path multimediaFolder) throws IOException {
+        this.multimediaFolder = multimediaFolder;
+        Path folder = NegatronPreloader.getCachePath().resolve(FOLDER);
+        Files.createDirectories(folder);
+        indexFile = folder.resolve("atlas.idx");
+
+        long imageCount = 0;
+        for (Path sourceFolder : getSourceFolders()) try (Stream<Path> files = listImages(sourceFolder)) {
+            imageCount += files.limit(MAX_CAPACITY).count();
+        }
+        capacity = (int) Math.max(MIN_CAPACITY, Math.min(imageCount, MAX_CAPACITY));
+        entries = new LinkedHashMap<>(capacity * 4 / 3 + 1, 0.75f, true);
+
+        try (FileChannel channel = FileChannel.open(
+            folder.resolve("atlas.bin"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+        )) {
+            long size = (long) capacity * SLOT_STRIDE * Integer.BYTES;
+            if (channel.size() > size)
+                channel.truncate(size); // the collection shrank
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            pixels = buffer.asIntBuffer();
+        }
+
+        boolean[] usedSlots = new boolean[capacity];
+        if (Files.exists(indexFile)) try (DataInputStream input = new DataInputStream(
+            new BufferedInputStream(Files.newInputStream(indexFile))
+        )) {
+            if (
+                input.readInt() == MAGIC && input.readInt() == VERSION &&
+                input.readUTF().equals(multimediaFolder.toString())
+            ) {
+                int count = input.readInt();
+                for (int i = 0; i < count; ++i) {
+                    String key = input.readUTF();
+                    Entry entry = new Entry(input.readLong(), input.readInt(), input.readShort(), input.readShort());
+                    if (entry.slot < 0 || entry.slot >= capacity || usedSlots[entry.slot])
+                        continue; // the collection shrank, or the slot was reused meanwhile
+                    // the slot may have been overwritten after the index was last persisted
+                    if (readHeader(entry.slot, key) != entry.lastModified)
+                        continue;
+                    entries.put(key, entry);
+                    usedSlots[entry.slot] = true;
+                }
+            }
+        } catch (IOException ex) { // corrupted index, start afresh
+            entries.clear();
+            usedSlots = new boolean[capacity];
+        }
+        for (int slot = 0; slot < capacity; ++slot)
+            if (!usedSlots[slot])
+                freeSlots.add(slot);
+    }
+
+    public static synchronized ThumbnailAtlas open(Path multimediaFolder) throws IOException {
+        multimediaFolder = multimediaFolder.toAbsolutePath().normalize();
+        if (instance == null || !instance.multimediaFolder.equals(multimediaFolder)) {
+            if (instance != null)
+                instance.save();
+            instance = new ThumbnailAtlas(multimediaFolder);
+        }
+        return instance;
+    }
+
+    /**
+     * Decode and downsample in the background the snaps and icons missing from the atlas, as long as it has free slots.
+     */
+    public static void preload(Path multimediaFolder) {
+        if (!Files.isDirectory(multimediaFolder))
+            return;
+        Background.Tasks.submit(() -> {
+            try {
+                open(multimediaFolder).update();
+            } catch (IOException ex) {
+                Logger.getLogger(ThumbnailAtlas.class.getName()).log(Level.WARNING, "Couldn't build the thumbnail atlas", ex);
+            }
+        });
+    }
+
+    private List<Path> getSourceFolders() {
+        return Arrays.stream(SOURCE_FOLDERS).map(multimediaFolder::resolve).filter(Files::isDirectory).collect(Collectors.toList());
+    }
+
+    private static Stream<Path> listImages(Path folder) throws IOException {
+        return Files.walk(folder).filter(file -> {
+            String name = file.getFileName().toString().toLowerCase();
+            return name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg");
+        });
+    }
+
+    private void update() throws IOException {
+        int freeSlotCount;
+        synchronized (entries) {
+            freeSlotCount = freeSlots.size();
+        }
+
+        List<Path> files = new ArrayList<>();
+        for (Path sourceFolder : getSourceFolders()) try (Stream<Path> stream = listImages(sourceFolder)) {
+            files.addAll(stream.filter(this::isMissing).limit(freeSlotCount - files.size()).collect(Collectors.toList()));
+        }
+
+        // persist the index after each batch, for the thumbnails to be available even if the application is killed meanwhile
+        for (int i = 0; i < files.size(); i += BATCH_SIZE) {
+            List<Path> batch = files.subList(i, Math.min(i + BATCH_SIZE, files.size()));
+            Background.Tasks.submit(() -> {
+                for (Path file : batch)
+                    if (decode(file, false) == null && isFull())
+                        break;
+                save();
+            });
+        }
+    }
+
+    private String toKey(Path file) {
+        return multimediaFolder.relativize(file).toString().replace('\\', '/');
+    }
+
+    private boolean isFull() {
+        synchronized (entries) {
+            return freeSlots.isEmpty();
+        }
+    }
+
+    private boolean isMissing(Path file) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(toKey(file));
+        }
+        try {
+            return entry == null || entry.lastModified != Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @param evict whether to recycle the least recently used slot if the atlas is full
+     * @return the downsampled image, or null if it couldn't be decoded or stored
+     */
+    private Image decode(Path file, boolean evict) {
+        try {
+            long lastModified = Files.getLastModifiedTime(file).toMillis();
+            Image image = new Image(file.toUri().toString(), SLOT_WIDTH, SLOT_HEIGHT, true, true);
+            if (image.isError())
+                return null;
+            return put(toKey(file), lastModified, image, evict) ? image : null;
+        } catch (IOException ex) {
+            return null; // the file vanished meanwhile, swallow exceptions
+        }
+    }
+
+    private boolean put(String key, long lastModified, Image image, boolean evict) {
+        int width = Math.min((int) image.getWidth(), SLOT_WIDTH);
+        int height = Math.min((int) image.getHeight(), SLOT_HEIGHT);
+
+        int slot;
+        synchronized (entries) {
+            if (freeSlots.isEmpty() && !entries.containsKey(key)) {
+                if (!evict)
+                    return false;
+                Iterator<Entry> eldest = entries.values().iterator();
+                freeSlots.add(eldest.next().slot);
+                eldest.remove();
+            }
+            Entry previous = entries.remove(key);
+            if (previous != null)
+                freeSlots.add(previous.slot);
+            slot = freeSlots.poll();
+        }
+
+        // the slot is owned by this thread until its entry gets published,
+        // readers still copying its former thumbnail notice that its entry was removed meanwhile
+        writeHeader(slot, key, TOMBSTONE);
+        int[] row = new int[width * height];
+        image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbPreInstance(), row, 0, width);
+        IntBuffer target = pixels.slice(slot * SLOT_STRIDE + HEADER_SIZE, SLOT_SIZE);
+        for (int y = 0; y < height; ++y)
+            target.put(y * SLOT_WIDTH, row, y * width, width);
+        writeHeader(slot, key, lastModified);
+
+        synchronized (entries) {
+            entries.put(key, new Entry(lastModified, slot, width, height));
+        }
+        return true;
+    }
+
+    private void writeHeader(int slot, String key, long lastModified) {
+        int offset = slot * SLOT_STRIDE;
+        pixels.put(offset, key.hashCode());
+        pixels.put(offset + 1, (int) (lastModified >>> 32));
+        pixels.put(offset + 2, (int) lastModified);
+    }
+
+    /**
+     * @return the mtime stored in the slot header, or TOMBSTONE if the slot doesn't hold the thumbnail of the key
+     */
+    private long readHeader(int slot, String key) {
+        int offset = slot * SLOT_STRIDE;
+        if (pixels.get(offset) != key.hashCode())
+            return TOMBSTONE;
+        return (long) pixels.get(offset + 1) << 32 | (pixels.get(offset + 2) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Missing or outdated thumbnails are decoded from the original file and stored in the atlas,
+     * evicting the least recently used one if it's full.
+     * @param file a snap or an icon located in the Multimedia folder
+     * @return its thumbnail, or null if it couldn't be decoded
+     */
+    public Image getThumbnail(Path file) {
+        file = file.toAbsolutePath().normalize();
+        String key = toKey(file);
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        try {
+            if (entry == null || entry.lastModified != Files.getLastModifiedTime(file).toMillis())
+                return decode(file, true);
+        } catch (IOException ex) {
+            return null;
+        }
+
+        WritableImage image = new WritableImage(entry.width, entry.height);
+        image.getPixelWriter().setPixels(
+            0, 0, entry.width, entry.height, PixelFormat.getIntArgbPreInstance(),
+            pixels.slice(entry.slot * SLOT_STRIDE + HEADER_SIZE, SLOT_SIZE), SLOT_WIDTH
+        );
+        // the slot may have been recycled while being copied, in which case its entry was removed beforehand
+        synchronized (entries) {
+            if (entries.get(key) != entry)
+                return decode(file, true);
+        }
+        return image;
+    }
+
+    /**
+     * Persist the atlas index, the pixels themselves being persisted by the memory-mapped file.
+     */
+    public void save() {
+        try {
+            PathUtil.writeAtomically(indexFile, temp -> {
+                try (DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp))
+                )) {
+                    output.writeInt(MAGIC);
+                    output.writeInt(VERSION);
+                    output.writeUTF(multimediaFolder.toString());
+                    synchronized (entries) {
+                        output.writeInt(entries.size());
+                        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                            output.writeUTF(entry.getKey());
+                            output.writeLong(entry.getValue().lastModified);
+                            output.writeInt(entry.getValue().slot);
+                            output.writeShort(entry.getValue().width);
+                            output.writeShort(entry.getValue().height);
+                        }
+                    }
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(ThumbnailAtlas.class.getName()).log(Level.WARNING, "Couldn't save the thumbnail atlas", ex);
+        }
+    }
+}
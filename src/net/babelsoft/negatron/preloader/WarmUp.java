@@ -0,0 +1,171 @@
+/*
+ * This file is part of Negatron.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.babelsoft.negatron.preloader;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Replay a class list recorded during a previous run while the preloader is idle,
+ * so that the application starts against a warm class loader and page cache.
+ *
+ * The class list holds one class name per line, optionally followed by some attributes that are ignored here,
+ * which is also the format of the JVM option -XX:DumpLoadedClassList.
+ * Lines starting with "@resource " reference files to be read ahead into the page cache.
+ */
+public final class WarmUp {
+
+    public static final String CLASS_LIST = "Negatron.classlist";
+    private static final String RESOURCE = "@resource ";
+    private static final String DIAGNOSTIC_COMMAND = "com.sun.management:type=DiagnosticCommand";
+
+    private final List<Future<?>> tasks = new ArrayList<>();
+    private volatile boolean cancelled;
+
+    private WarmUp() { }
+
+    public static WarmUp replay(Path classList, ClassLoader loader) {
+        WarmUp warmUp = new WarmUp();
+        if (Files.notExists(classList))
+            return warmUp;
+
+        List<String> classes = new ArrayList<>();
+        List<Path> resources = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(classList)) {
+                line = line.trim();
+                if (line.startsWith(RESOURCE))
+                    resources.add(Paths.get(line.substring(RESOURCE.length()).trim()));
+                else if (!line.isEmpty() && line.charAt(0) != '#' && line.charAt(0) != '@') {
+                    int i = line.indexOf(' ');
+                    String name = (i < 0 ? line : line.substring(0, i)).replace('/', '.');
+                    if (!name.contains(".0x")) // hidden classes can't be looked up by name
+                        classes.add(name);
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(WarmUp.class.getName()).log(Level.WARNING, "Couldn't read the class list", ex);
+            return warmUp;
+        }
+
+        // keep the recorded order within each slice as superclasses and dependencies usually come first
+        int parallelism = Background.Tasks.PARALLELISM;
+        int sliceSize = (classes.size() + parallelism - 1) / parallelism;
+        for (int i = 0; i < classes.size(); i += sliceSize) {
+            List<String> slice = classes.subList(i, Math.min(i + sliceSize, classes.size()));
+            warmUp.tasks.add(Background.Tasks.submit(() -> warmUp.loadClasses(slice, loader)));
+        }
+        // static initialisers of the JDK depend on each other in cycles, initialising them from several threads could deadlock
+        warmUp.tasks.add(Background.Tasks.submit(() -> warmUp.initialiseClasses(classes, loader)));
+        for (Path resource : resources)
+            warmUp.tasks.add(Background.Tasks.submit(() -> warmUp.readResource(resource)));
+
+        return warmUp;
+    }
+
+    private void loadClasses(List<String> classes, ClassLoader loader) {
+        for (String name : classes) {
+            if (cancelled)
+                return;
+            try {
+                Class.forName(name, false, loader);
+            } catch (ClassNotFoundException | LinkageError ex) { } // the class list is only a hint, swallow exceptions
+        }
+    }
+
+    /**
+     * Must run on a single thread, which initialises the classes in the recorded order.
+     */
+    private void initialiseClasses(List<String> classes, ClassLoader loader) {
+        for (String name : classes) {
+            if (cancelled)
+                return;
+            if (isInitialisable(name)) try {
+                Class.forName(name, true, loader);
+            } catch (ClassNotFoundException | LinkageError ex) { } // the class list is only a hint, swallow exceptions
+        }
+    }
+
+    /**
+     * Initialising an application class would also initialise its JavaFX superclasses outside of the JavaFX thread,
+     * and would run its static initialisers before the ini file is even written, so those classes are only loaded.
+     */
+    private static boolean isInitialisable(String name) {
+        return (name.startsWith("java.") || name.startsWith("jdk.")) && !name.startsWith("java.awt.");
+    }
+
+    private void readResource(Path resource) {
+        if (!Files.isRegularFile(resource))
+            return;
+        try (FileChannel channel = FileChannel.open(resource, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            while (!cancelled && channel.read(buffer) >= 0)
+                buffer.clear();
+        } catch (IOException ex) { } // the class list is only a hint, swallow exceptions
+    }
+
+    /**
+     * Record in the background the classes loaded so far, along with some files to be read ahead, for the next launch to replay them.
+     */
+    public static void record(Path classList, List<Path> resources) {
+        Background.Tasks.submit(() -> {
+            try {
+                String hierarchy = (String) ManagementFactory.getPlatformMBeanServer().invoke(
+                    new ObjectName(DIAGNOSTIC_COMMAND), "vmClassHierarchy",
+                    new Object[] { new String[0] }, new String[] { String[].class.getName() }
+                );
+                PathUtil.writeAtomically(classList, temp -> {
+                    try (BufferedWriter writer = Files.newBufferedWriter(temp)) {
+                        // one "|--name/loader" line per class, superclasses coming before their subclasses
+                        for (String line : hierarchy.split("\\R")) {
+                            String entry = line.replaceFirst("^[|\\s-]*", "");
+                            int slash = entry.indexOf('/');
+                            // hidden classes are named name/address/loader and can't be looked up by name
+                            if (slash > 0 && entry.indexOf('/', slash + 1) < 0) {
+                                writer.write(entry.substring(0, slash)); writer.newLine();
+                            }
+                        }
+                        for (Path resource : resources) {
+                            writer.write(RESOURCE + resource.toAbsolutePath()); writer.newLine();
+                        }
+                    }
+                });
+            } catch (IOException | JMException | RuntimeException ex) {
+                Logger.getLogger(WarmUp.class.getName()).log(Level.WARNING, "Couldn't record the class list", ex);
+            }
+        });
+    }
+
+    public void cancel() {
+        cancelled = true;
+        tasks.forEach(task -> task.cancel(false));
+    }
+}